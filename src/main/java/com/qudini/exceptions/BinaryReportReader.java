@@ -0,0 +1,396 @@
+package com.qudini.exceptions;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import static com.qudini.exceptions.BinaryReportWriter.*;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads back files written by {@link BinaryReportWriter}, turning each report into a readable trace in the format of
+ * {@link Throwable#printStackTrace()}, causes and suppressed exceptions included. The traces differ from what
+ * {@code printStackTrace} would have given in two ways: frames lack the module and class loader names that Java 9 and
+ * later print, and each exception is shown as its class name and message even if it overrides {@code toString}.
+ * <p>
+ * Batches that were torn, for example by a crash part-way through writing them, are skipped along with the rest of
+ * their segment, and reading resumes from the next segment.
+ * <p>
+ * Eg.:
+ * <pre>{@code
+ * try (BinaryReportReader reader = new BinaryReportReader(path)) {
+ *     for (Optional<Event> event = reader.read(); event.isPresent(); event = reader.read()) {
+ *         System.out.println(event.get().getTrace());
+ *     }
+ * }
+ * }</pre>
+ * <p>
+ * This can also be run from the command line, printing every report in the files given as arguments.
+ */
+@CheckReturnValue
+public final class BinaryReportReader implements Closeable {
+
+    private static final int MAXIMUM_DEPTH = 1024;
+    private static final int SCAN_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final List<String> strings = new ArrayList<>();
+    private final List<StackTraceElement> frames = new ArrayList<>();
+    private final Queue<Event> pending = new ArrayDeque<>();
+    private long position;
+    private boolean inSegment;
+    private int expectedSequence;
+    private long previousMillis;
+
+    public BinaryReportReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, READ);
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String path : args) {
+            try (BinaryReportReader reader = new BinaryReportReader(Paths.get(path))) {
+                for (Optional<Event> event = reader.read(); event.isPresent(); event = reader.read()) {
+                    System.out.println(event.get());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next report, or nothing once the end of the file has been reached.
+     * @throws IOException If the file could not be read, or it is not a valid report file.
+     */
+    @Nonnull
+    public Optional<Event> read() throws IOException {
+        while (pending.isEmpty()) {
+            Optional<ByteBuffer> batch = nextBatch();
+            if (!batch.isPresent()) {
+                return Optional.empty();
+            }
+            readBatch(batch.get());
+        }
+        return Optional.of(pending.remove());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the contents of the next intact batch, skipping over any torn ones.
+     */
+    private Optional<ByteBuffer> nextBatch() throws IOException {
+        while (true) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+            if (!readFully(position, header)) {
+                return Optional.empty();
+            }
+
+            // Buffer methods are called through `Buffer`, as `ByteBuffer` only overrides them from Java 9 onwards.
+            ((Buffer) header).flip();
+            int marker = header.getInt();
+            int length = header.getInt();
+            int crc = header.getInt();
+
+            if (marker == BATCH_MARKER && length >= 4 && length <= size - position - BATCH_HEADER_SIZE) {
+                ByteBuffer contents = ByteBuffer.allocate(length);
+                if (readFully(position + BATCH_HEADER_SIZE, contents)) {
+                    ((Buffer) contents).flip();
+                    CRC32 actual = new CRC32();
+                    actual.update(contents.duplicate());
+                    if ((int) actual.getValue() == crc) {
+                        position += BATCH_HEADER_SIZE + length;
+                        return Optional.of(contents);
+                    }
+                }
+            }
+
+            // The dictionary entries the torn batch may have defined are lost along with it, so the rest of its
+            // segment cannot be read either.
+            inSegment = false;
+            long next = findMarker(position + 1);
+            if (next < 0) {
+                position = size;
+                return Optional.empty();
+            }
+            position = next;
+        }
+    }
+
+    private void readBatch(ByteBuffer batch) throws IOException {
+        int sequence = batch.getInt();
+        boolean continuesSegment = inSegment && sequence == expectedSequence;
+        expectedSequence = sequence + 1;
+        if (!continuesSegment && (!batch.hasRemaining() || batch.get(batch.position()) != TAG_SEGMENT)) {
+            inSegment = false;
+            return;
+        }
+
+        while (batch.hasRemaining()) {
+            int tag = batch.get();
+            switch (tag) {
+                case TAG_SEGMENT:
+                    readSegment(batch);
+                    break;
+                case TAG_STRING:
+                    strings.add(readString(batch));
+                    break;
+                case TAG_FRAME:
+                    frames.add(readFrame(batch));
+                    break;
+                case TAG_EVENT:
+                    pending.add(readEvent(batch));
+                    break;
+                default:
+                    throw new IOException("unknown record tag " + tag);
+            }
+        }
+    }
+
+    private void readSegment(ByteBuffer batch) throws IOException {
+        long version = readVarint(batch);
+        if (version != VERSION) {
+            throw new IOException("unsupported report file version " + version);
+        }
+        strings.clear();
+        frames.clear();
+        previousMillis = readVarint(batch);
+        inSegment = true;
+    }
+
+    private StackTraceElement readFrame(ByteBuffer batch) throws IOException {
+        String className = stringAt(readVarint(batch));
+        String methodName = stringAt(readVarint(batch));
+        long fileName = readVarint(batch);
+        int lineNumber = (int) unZigZag(readVarint(batch));
+        return new StackTraceElement(className, methodName, fileName == 0 ? null : stringAt(fileName - 1), lineNumber);
+    }
+
+    private Event readEvent(ByteBuffer batch) throws IOException {
+        long millis = previousMillis + unZigZag(readVarint(batch));
+        previousMillis = millis;
+        String message = readMessage(batch, null);
+
+        StringBuilder trace = new StringBuilder();
+        readNode(batch, message, new StackTraceElement[0], "", "", 0, trace);
+        return new Event(Instant.ofEpochMilli(millis), message, trace.toString());
+    }
+
+    /**
+     * Appends a throwable, its suppressed exceptions and its cause to {@code trace} as
+     * {@link Throwable#printStackTrace()} would.
+     */
+    private void readNode(
+            ByteBuffer batch,
+            @Nullable String reported,
+            StackTraceElement[] enclosing,
+            String caption,
+            String prefix,
+            int depth,
+            StringBuilder trace
+    ) throws IOException {
+        if (depth > MAXIMUM_DEPTH) {
+            throw new IOException("exceptions nested too deeply");
+        }
+
+        long kind = readVarint(batch);
+        String className = stringAt(readVarint(batch));
+        String message = readMessage(batch, reported);
+        String description = message == null ? className : className + ": " + message;
+
+        if (kind == NODE_CIRCULAR) {
+            trace.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(description).append(']');
+            trace.append(System.lineSeparator());
+            return;
+        } else if (kind != NODE_THROWABLE) {
+            throw new IOException("unknown exception kind " + kind);
+        }
+
+        int inCommon = readCount(batch, enclosing.length);
+        int own = readCount(batch, batch.remaining());
+        StackTraceElement[] elements = new StackTraceElement[own + inCommon];
+        for (int i = 0; i < own; ++i) {
+            elements[i] = frameAt(readVarint(batch));
+        }
+        System.arraycopy(enclosing, enclosing.length - inCommon, elements, own, inCommon);
+
+        trace.append(prefix).append(caption).append(description).append(System.lineSeparator());
+        for (int i = 0; i < own; ++i) {
+            trace.append(prefix).append("\tat ").append(elements[i]).append(System.lineSeparator());
+        }
+        if (inCommon > 0) {
+            trace.append(prefix).append("\t... ").append(inCommon).append(" more").append(System.lineSeparator());
+        }
+
+        int suppressed = readCount(batch, batch.remaining());
+        for (int i = 0; i < suppressed; ++i) {
+            readNode(batch, reported, elements, "Suppressed: ", prefix + "\t", depth + 1, trace);
+        }
+
+        int cause = readCount(batch, 1);
+        if (cause == 1) {
+            readNode(batch, reported, elements, "Caused by: ", prefix, depth + 1, trace);
+        }
+    }
+
+    @Nullable
+    private String readMessage(ByteBuffer batch, @Nullable String reported) throws IOException {
+        long kind = readVarint(batch);
+        if (kind == MESSAGE_ABSENT) {
+            return null;
+        } else if (kind == MESSAGE_AS_REPORTED) {
+            return reported;
+        } else if (kind == MESSAGE_INLINE) {
+            return readString(batch);
+        } else {
+            throw new IOException("unknown message kind " + kind);
+        }
+    }
+
+    private String readString(ByteBuffer batch) throws IOException {
+        byte[] bytes = new byte[readCount(batch, batch.remaining())];
+        batch.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a count read from the batch, which must be no more than {@code maximum}.
+     */
+    private static int readCount(ByteBuffer batch, int maximum) throws IOException {
+        long count = readVarint(batch);
+        if (count > maximum) {
+            throw new IOException("count of " + count + " exceeds the limit of " + maximum);
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(ByteBuffer batch) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!batch.hasRemaining()) {
+                throw new IOException("batch ends part-way through a record");
+            }
+            int b = batch.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private String stringAt(long index) throws IOException {
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("reference to undefined string " + index);
+        }
+        return strings.get((int) index);
+    }
+
+    private StackTraceElement frameAt(long index) throws IOException {
+        if (index < 0 || index >= frames.size()) {
+            throw new IOException("reference to undefined frame " + index);
+        }
+        return frames.get((int) index);
+    }
+
+    /**
+     * @return whether {@code buffer} could be filled from {@code start} before reaching the end of the file.
+     */
+    private boolean readFully(long start, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the next batch marker from {@code start}, or -1 if there are none.
+     */
+    private long findMarker(long start) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(SCAN_SIZE);
+        for (long offset = start; ; ) {
+            ((Buffer) window).clear();
+            if (channel.read(window, offset) < 0) {
+                return -1;
+            }
+            ((Buffer) window).flip();
+            if (window.limit() < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 4 <= window.limit(); ++i) {
+                if (window.getInt(i) == BATCH_MARKER) {
+                    return offset + i;
+                }
+            }
+
+            // Overlap the next read by three bytes, in case a marker straddles the two.
+            offset += window.limit() - 3;
+        }
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * A single report read back from a file.
+     */
+    public static final class Event {
+
+        private final Instant timestamp;
+        private final String message;
+        private final String trace;
+
+        private Event(Instant timestamp, @Nullable String message, String trace) {
+            this.timestamp = timestamp;
+            this.message = message;
+            this.trace = trace;
+        }
+
+        @Nonnull
+        public Instant getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the message the exception was reported with.
+         */
+        @Nonnull
+        public Optional<String> getMessage() {
+            return Optional.ofNullable(message);
+        }
+
+        /**
+         * @return the exception, its suppressed exceptions and its causes, formatted as by
+         * {@link Throwable#printStackTrace()}.
+         */
+        @Nonnull
+        public String getTrace() {
+            return trace;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + getMessage().map(m -> " " + m).orElse("") + System.lineSeparator() + trace;
+        }
+    }
+}
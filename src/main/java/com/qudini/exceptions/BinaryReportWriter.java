@@ -0,0 +1,525 @@
+package com.qudini.exceptions;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A {@link ExceptionsService.Reporter} that appends reports to a file in a compact binary encoding, rather than the
+ * verbose text of {@link Throwable#printStackTrace()}. Use {@link BinaryReportReader} to turn the file back into
+ * readable traces.
+ * <p>
+ * Reports are buffered and written in batches, each framed by a marker, its length and a CRC-32 of its contents, so a
+ * batch torn by a crash can be detected and skipped. Within a batch, records start with a tag byte. Class names,
+ * method names, file names and whole stack frames are written once into a dictionary and afterwards referred to by
+ * varint-encoded index. Each event's timestamp is the varint-encoded difference from the previous one, and the frames
+ * a cause or suppressed exception shares with the exception enclosing it are counted rather than repeated. Messages
+ * are written inline, as they rarely repeat exactly.
+ * <p>
+ * The dictionaries are bounded: once they grow too large, the next batch starts a new segment with empty
+ * dictionaries. A segment also starts whenever a writer is opened or a batch fails to be written, so losing a batch
+ * loses at most the rest of its segment rather than the rest of the file.
+ * <p>
+ * A batch is written once it grows large enough, every {@code flushInterval} by a background daemon thread, on
+ * {@link #flush()}, and on {@link #close()}. A crash can therefore lose up to {@code flushInterval} of reports. Writing
+ * happens outside the lock reports are encoded under, and while a batch is being written new reports carry on being
+ * buffered rather than waiting.
+ * <p>
+ * Reporting never throws: reports that cannot be written, for example because the disk is full, are dropped and
+ * counted in {@link #getDroppedReports()}.
+ */
+public final class BinaryReportWriter implements ExceptionsService.Reporter, Closeable {
+
+    static final int VERSION = 1;
+
+    static final int BATCH_MARKER = 0x51584252;
+    static final int BATCH_HEADER_SIZE = 12;
+
+    static final int TAG_SEGMENT = 0;
+    static final int TAG_STRING = 1;
+    static final int TAG_FRAME = 2;
+    static final int TAG_EVENT = 3;
+
+    static final int NODE_THROWABLE = 0;
+    static final int NODE_CIRCULAR = 1;
+
+    static final int MESSAGE_ABSENT = 0;
+    static final int MESSAGE_AS_REPORTED = 1;
+    static final int MESSAGE_INLINE = 2;
+
+    private static final int DEFAULT_MAXIMUM_DICTIONARY_SIZE = 1 << 16;
+    private static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofSeconds(1);
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int FLUSH_THRESHOLD = BUFFER_SIZE / 2;
+    private static final int MAXIMUM_BUFFERED = 1 << 24;
+    private static final int MAXIMUM_VARINT_SIZE = 10;
+
+    private final FileChannel channel;
+    private final Clock clock;
+    private final long flushIntervalMillis;
+    private final int maximumDictionarySize;
+    private final LongAdder droppedReports = new LongAdder();
+    private final AtomicBoolean batchLost = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Held from when a batch is taken out of {@link #buffer} until it has been written, so batches reach the file in
+     * order. Only ever acquired while holding the writer's own lock, never the other way around.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Guarded by `this`.
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<StackTraceElement, Integer> frames = new HashMap<>();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private int batchReports;
+    private int batchSequence;
+    private boolean segmentDue = true;
+    private long previousMillis;
+    private long lastFlushMillis;
+    private boolean closed;
+
+    // Guarded by `writeLock`.
+    private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Opens {@code path} for appending reports, creating it if it doesn't exist. Buffered reports are written at least
+     * every second.
+     */
+    public BinaryReportWriter(Path path) throws IOException {
+        this(path, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Opens {@code path} for appending reports, creating it if it doesn't exist.
+     *
+     * @param flushInterval how often buffered reports are written.
+     * @throws IllegalArgumentException If {@code flushInterval} is not positive.
+     */
+    public BinaryReportWriter(Path path, Duration flushInterval) throws IOException {
+        this(path, flushInterval, DEFAULT_MAXIMUM_DICTIONARY_SIZE, Clock.systemUTC());
+    }
+
+    BinaryReportWriter(Path path, Duration flushInterval, int maximumDictionarySize, Clock clock) throws IOException {
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("the flush interval must be positive");
+        }
+        this.channel = FileChannel.open(path, CREATE, WRITE, APPEND);
+        this.flushIntervalMillis = flushInterval.toMillis();
+        this.maximumDictionarySize = maximumDictionarySize;
+        this.clock = clock;
+        this.lastFlushMillis = clock.millis();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "binary-report-writer-" + path.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = flushInterval.toNanos();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void report(@Nullable String message, Exception cause) {
+        long millis = clock.millis();
+
+        // Traces are captured once, outside the lock, as each call to `getStackTrace` copies them.
+        Node root = Node.capture(cause, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        ByteBuffer full;
+        int reports;
+        synchronized (this) {
+            if (closed || buffer.position() >= MAXIMUM_BUFFERED) {
+                droppedReports.increment();
+                return;
+            }
+            discardIfBatchLost();
+            if (buffer.position() == 0) {
+                beginBatch(millis);
+            }
+
+            // Any new dictionary entries must precede the event referring to them.
+            intern(root);
+            writeEvent(millis, message, root);
+            ++batchReports;
+
+            boolean due = buffer.position() >= FLUSH_THRESHOLD || millis - lastFlushMillis >= flushIntervalMillis;
+            if (!due || !writeLock.tryLock()) {
+                return;
+            }
+
+            // The batch written while waiting for the lock may have failed, orphaning what's buffered since.
+            discardIfBatchLost();
+            if (buffer.position() == 0) {
+                writeLock.unlock();
+                return;
+            }
+            reports = batchReports;
+            full = takeBatch(millis);
+        }
+
+        try {
+            writeBatch(full, reports);
+        } catch (IOException exception) {
+
+            // Already counted in the dropped reports.
+        }
+    }
+
+    /**
+     * Writes any buffered reports to the file.
+     *
+     * @throws IOException If the reports could not be written; they are counted as dropped.
+     */
+    public void flush() throws IOException {
+        ByteBuffer full;
+        int reports;
+        synchronized (this) {
+            discardIfBatchLost();
+            if (buffer.position() == 0) {
+                return;
+            }
+            writeLock.lock();
+            discardIfBatchLost();
+            if (buffer.position() == 0) {
+                writeLock.unlock();
+                return;
+            }
+            reports = batchReports;
+            full = takeBatch(clock.millis());
+        }
+        writeBatch(full, reports);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException exception) {
+
+            // Already counted in the dropped reports.
+        }
+    }
+
+    /**
+     * @return how many reports have been dropped because they could not be written.
+     */
+    public long getDroppedReports() {
+        return droppedReports.sum();
+    }
+
+    /**
+     * Writes any buffered reports and closes the file. Reports made afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        flusher.shutdown();
+        try {
+            flush();
+        } finally {
+            writeLock.lock();
+            try {
+                channel.close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void discardIfBatchLost() {
+        if (batchLost.getAndSet(false)) {
+
+            // What's buffered may refer to dictionary entries in the lost batch.
+            droppedReports.add(batchReports);
+            ((Buffer) buffer).clear();
+            batchReports = 0;
+            segmentDue = true;
+        }
+    }
+
+    private void beginBatch(long millis) {
+        ((Buffer) buffer).position(BATCH_HEADER_SIZE);
+        buffer.putInt(batchSequence++);
+
+        if (segmentDue || strings.size() >= maximumDictionarySize || frames.size() >= maximumDictionarySize) {
+            strings.clear();
+            frames.clear();
+            previousMillis = millis;
+            segmentDue = false;
+
+            ensure(1 + 2 * MAXIMUM_VARINT_SIZE);
+            buffer.put((byte) TAG_SEGMENT);
+            putVarint(VERSION);
+            putVarint(millis);
+        }
+    }
+
+    /**
+     * Must be called holding both the writer's lock and {@link #writeLock}.
+     */
+    private ByteBuffer takeBatch(long millis) {
+        ByteBuffer full = buffer;
+        buffer = spare;
+        spare = null;
+        batchReports = 0;
+        lastFlushMillis = millis;
+        return full;
+    }
+
+    /**
+     * Must be called holding {@link #writeLock}, which it releases.
+     */
+    private void writeBatch(ByteBuffer batch, int reports) throws IOException {
+        try {
+            // Buffer methods are called through `Buffer`, as `ByteBuffer` only overrides them from Java 9 onwards.
+            ((Buffer) batch).flip();
+            ByteBuffer contents = batch.duplicate();
+            ((Buffer) contents).position(BATCH_HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            batch.putInt(0, BATCH_MARKER);
+            batch.putInt(4, batch.limit() - BATCH_HEADER_SIZE);
+            batch.putInt(8, (int) crc.getValue());
+
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+        } catch (IOException exception) {
+            droppedReports.add(reports);
+            batchLost.set(true);
+            throw exception;
+        } finally {
+            ((Buffer) batch).clear();
+            spare = batch;
+            writeLock.unlock();
+        }
+    }
+
+    private void intern(Node node) {
+        internString(node.className);
+        if (node.trace == null) {
+            return;
+        }
+        for (StackTraceElement frame : node.trace) {
+            internFrame(frame);
+        }
+        node.suppressed.forEach(this::intern);
+        if (node.cause != null) {
+            intern(node.cause);
+        }
+    }
+
+    private int internString(String string) {
+        Integer existing = strings.get(string);
+        if (existing != null) {
+            return existing;
+        }
+
+        ensure(1);
+        buffer.put((byte) TAG_STRING);
+        putString(string);
+
+        int index = strings.size();
+        strings.put(string, index);
+        return index;
+    }
+
+    private int internFrame(StackTraceElement frame) {
+        Integer existing = frames.get(frame);
+        if (existing != null) {
+            return existing;
+        }
+
+        int className = internString(frame.getClassName());
+        int methodName = internString(frame.getMethodName());
+        int fileName = frame.getFileName() == null ? 0 : internString(frame.getFileName()) + 1;
+
+        ensure(1 + 4 * MAXIMUM_VARINT_SIZE);
+        buffer.put((byte) TAG_FRAME);
+        putVarint(className);
+        putVarint(methodName);
+        putVarint(fileName);
+        putVarint(zigZag(frame.getLineNumber()));
+
+        int index = frames.size();
+        frames.put(frame, index);
+        return index;
+    }
+
+    private void writeEvent(long millis, @Nullable String message, Node root) {
+        ensure(1 + MAXIMUM_VARINT_SIZE);
+        buffer.put((byte) TAG_EVENT);
+        putVarint(zigZag(millis - previousMillis));
+        previousMillis = millis;
+        putMessage(message, null);
+        putNode(root, new StackTraceElement[0], message);
+    }
+
+    private void putNode(Node node, StackTraceElement[] enclosing, @Nullable String reported) {
+        ensure(2 * MAXIMUM_VARINT_SIZE);
+        putVarint(node.trace == null ? NODE_CIRCULAR : NODE_THROWABLE);
+        putVarint(strings.get(node.className));
+        putMessage(node.message, reported);
+        if (node.trace == null) {
+            return;
+        }
+
+        int inCommon = framesInCommon(node.trace, enclosing);
+        int own = node.trace.length - inCommon;
+        ensure((3 + own) * MAXIMUM_VARINT_SIZE);
+        putVarint(inCommon);
+        putVarint(own);
+        for (int i = 0; i < own; ++i) {
+            putVarint(frames.get(node.trace[i]));
+        }
+
+        putVarint(node.suppressed.size());
+        for (Node suppressed : node.suppressed) {
+            putNode(suppressed, node.trace, reported);
+        }
+
+        ensure(MAXIMUM_VARINT_SIZE);
+        putVarint(node.cause == null ? 0 : 1);
+        if (node.cause != null) {
+            putNode(node.cause, node.trace, reported);
+        }
+    }
+
+    private void putMessage(@Nullable String message, @Nullable String reported) {
+        ensure(MAXIMUM_VARINT_SIZE);
+        if (message == null) {
+            putVarint(MESSAGE_ABSENT);
+        } else if (message.equals(reported)) {
+            putVarint(MESSAGE_AS_REPORTED);
+        } else {
+            putVarint(MESSAGE_INLINE);
+            putString(message);
+        }
+    }
+
+    private void putString(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        ensure(MAXIMUM_VARINT_SIZE + bytes.length);
+        putVarint(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Makes room for at least {@code bytes} more bytes in the buffer, growing it if need be; batches are written
+     * whole, so the buffer cannot be drained part-way through one.
+     */
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int required = buffer.position() + bytes;
+        int capacity = buffer.capacity();
+        while (capacity < required) {
+            capacity *= 2;
+        }
+        ((Buffer) buffer).flip();
+        buffer = ByteBuffer.allocateDirect(capacity).put(buffer);
+    }
+
+    /**
+     * @return how many frames at the bottom of {@code trace} are the same as at the bottom of {@code enclosing}, as
+     * in the "... n more" lines of {@link Throwable#printStackTrace()}.
+     */
+    private static int framesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosing) {
+        int m = trace.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+            --m;
+            --n;
+        }
+        return trace.length - 1 - m;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * A throwable along with its suppressed exceptions and cause, captured in the order
+     * {@link Throwable#printStackTrace()} visits them.
+     */
+    private static final class Node {
+
+        private final String className;
+
+        @Nullable
+        private final String message;
+
+        /**
+         * Null when the throwable was already visited, meaning it's a circular reference.
+         */
+        @Nullable
+        private final StackTraceElement[] trace;
+
+        private final List<Node> suppressed;
+
+        @Nullable
+        private final Node cause;
+
+        private Node(
+                Throwable throwable,
+                @Nullable StackTraceElement[] trace,
+                List<Node> suppressed,
+                @Nullable Node cause
+        ) {
+            this.className = throwable.getClass().getName();
+            this.message = throwable.getLocalizedMessage();
+            this.trace = trace;
+            this.suppressed = suppressed;
+            this.cause = cause;
+        }
+
+        static Node capture(Throwable throwable, Set<Throwable> seen) {
+            if (!seen.add(throwable)) {
+                return new Node(throwable, null, Collections.emptyList(), null);
+            }
+
+            StackTraceElement[] trace = throwable.getStackTrace();
+            List<Node> suppressed = new ArrayList<>();
+            for (Throwable s : throwable.getSuppressed()) {
+                suppressed.add(capture(s, seen));
+            }
+            Throwable cause = throwable.getCause();
+            return new Node(throwable, trace, suppressed, cause == null ? null : capture(cause, seen));
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.qudini.exceptions;
+
+import javax.annotation.CheckReturnValue;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks how often each kind of exception occurs, and escalates once when its rate jumps well above its recent
+ * baseline. This allows per-event reporting to be turned down aggressively while still noticing real incidents.
+ * <p>
+ * Each key, such as an exception class or a fingerprint, gets a sliding window made of a ring of striped counters,
+ * one per bucket. Whenever a bucket completes, its count is folded into an exponentially-weighted moving average of
+ * counts per bucket, which acts as the key's baseline. A spike is when the window holds at least
+ * {@code minimumCount} events and more than {@code spikeFactor} times what the baseline predicts for the whole window.
+ * The {@link Escalator} is called once per spike; it is re-armed once the window falls back under the threshold.
+ * <p>
+ * A key seen for the first time has no baseline yet, so it escalates as soon as its window reaches
+ * {@code minimumCount} events. This is deliberate: an exception that was never seen before suddenly occurring in volume
+ * is itself an incident. {@code minimumCount} is what keeps a handful of new exceptions from escalating.
+ * <p>
+ * Memory is bounded: at most {@code maximumKeys} keys are tracked. To make room for a new key, one that has not been
+ * recorded since it was last considered for eviction is forgotten, in the manner of a clock cache. Keys that are
+ * still spiking are never forgotten, so each spike escalates only once; while every tracked key is spiking, new keys
+ * are not tracked at all.
+ * <p>
+ * The escalator is called on the thread recording the exception, so it must be fast, handing any slow work such as
+ * network calls off to another thread. Should it throw, the failure is counted in {@link #getEscalationFailures()}
+ * rather than propagated. Likewise, exceptions the grouping function throws or returns null for are counted in
+ * {@link #getKeyFailures()} and otherwise ignored.
+ * <p>
+ * Eg.:
+ * <pre>{@code
+ * ErrorRateMonitor monitor = new ErrorRateMonitor(
+ *         Duration.ofMinutes(1),
+ *         12,
+ *         5.0,
+ *         50,
+ *         1024,
+ *         ErrorRateMonitor::byFingerprint,
+ *         (key, windowCount, baseline) -> executor.execute(() -> pager.page(key))
+ * );
+ * ExceptionsService exceptions = new ExceptionsService(exceptionsToIgnore, reporters, monitor);
+ * }</pre>
+ */
+@CheckReturnValue
+public final class ErrorRateMonitor {
+
+    /**
+     * How much weight each newly-completed bucket carries in the baseline.
+     */
+    private static final double BASELINE_WEIGHT = 0.1;
+
+    private final long bucketNanos;
+    private final int buckets;
+    private final double spikeFactor;
+    private final long minimumCount;
+    private final int maximumKeys;
+    private final Function<? super Exception, String> keyOf;
+    private final Escalator escalator;
+    private final LongSupplier clock;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final LongAdder escalationFailures = new LongAdder();
+    private final LongAdder keyFailures = new LongAdder();
+
+    /**
+     * Tracked windows in the order the eviction clock visits them. Guarded by itself, which is only taken when a new key
+     * is admitted.
+     */
+    private final Queue<Window> evictionOrder = new ArrayDeque<>();
+
+    /**
+     * @param window       the span of time over which the current rate is measured.
+     * @param buckets      how many buckets the window is divided into; more buckets make the window slide more smoothly.
+     * @param spikeFactor  how many times above the baseline the window's count must be to count as a spike.
+     * @param minimumCount the least number of events in the window for it to count as a spike, which avoids escalating
+     *                     on a handful of events; at least one.
+     * @param maximumKeys  the most keys to track at once.
+     * @param keyOf        how exceptions are grouped, such as {@link #byClass} or {@link #byFingerprint}.
+     * @param escalator    called once when a key starts spiking; it must be fast.
+     * @throws IllegalArgumentException If any of the numeric arguments are out of range.
+     */
+    public ErrorRateMonitor(
+            Duration window,
+            int buckets,
+            double spikeFactor,
+            long minimumCount,
+            int maximumKeys,
+            Function<? super Exception, String> keyOf,
+            Escalator escalator
+    ) {
+        this(window, buckets, spikeFactor, minimumCount, maximumKeys, keyOf, escalator, System::nanoTime);
+    }
+
+    ErrorRateMonitor(
+            Duration window,
+            int buckets,
+            double spikeFactor,
+            long minimumCount,
+            int maximumKeys,
+            Function<? super Exception, String> keyOf,
+            Escalator escalator,
+            LongSupplier clock
+    ) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("there must be at least one bucket");
+        }
+        if (window.toNanos() < buckets) {
+            throw new IllegalArgumentException("the window must be at least one nanosecond per bucket");
+        }
+        if (spikeFactor <= 1.0) {
+            throw new IllegalArgumentException("the spike factor must be greater than one");
+        }
+        if (minimumCount < 1) {
+            throw new IllegalArgumentException("the minimum count must be at least one");
+        }
+        if (maximumKeys < 1) {
+            throw new IllegalArgumentException("at least one key must be tracked");
+        }
+        this.bucketNanos = window.toNanos() / buckets;
+        this.buckets = buckets;
+        this.spikeFactor = spikeFactor;
+        this.minimumCount = minimumCount;
+        this.maximumKeys = maximumKeys;
+        this.keyOf = keyOf;
+        this.escalator = escalator;
+        this.clock = clock;
+    }
+
+    /**
+     * Groups exceptions by their class.
+     */
+    @Nonnull
+    public static String byClass(Exception exception) {
+        return exception.getClass().getName();
+    }
+
+    /**
+     * Groups exceptions by their class and the frame they were thrown from, so that the same exception type thrown
+     * from different places is tracked separately.
+     */
+    @Nonnull
+    public static String byFingerprint(Exception exception) {
+        StackTraceElement[] trace = exception.getStackTrace();
+        return trace.length == 0
+                ? byClass(exception)
+                : byClass(exception) + '@' + trace[0];
+    }
+
+    /**
+     * Counts an occurrence of {@code exception}, escalating if its key has just started spiking.
+     */
+    public void record(Exception exception) {
+        String key;
+        try {
+            key = keyOf.apply(exception);
+        } catch (RuntimeException e) {
+            keyFailures.increment();
+            return;
+        }
+        if (key == null) {
+            keyFailures.increment();
+            return;
+        }
+
+        // `System#nanoTime` has an arbitrary origin, which may well be negative.
+        long epoch = Math.floorDiv(clock.getAsLong(), bucketNanos);
+
+        Window window = windows.get(key);
+        if (window == null) {
+            window = admit(key, epoch);
+            if (window == null) {
+                return;
+            }
+        }
+
+        long count = window.record(epoch);
+        if (isSpike(count, window.baseline)) {
+            if (window.escalated.compareAndSet(false, true)) {
+                try {
+                    escalator.escalate(key, count, window.baseline);
+                } catch (RuntimeException e) {
+                    escalationFailures.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many times the escalator has thrown.
+     */
+    public long getEscalationFailures() {
+        return escalationFailures.sum();
+    }
+
+    /**
+     * @return how many exceptions went uncounted because the grouping function threw or returned null for them.
+     */
+    public long getKeyFailures() {
+        return keyFailures.sum();
+    }
+
+    private boolean isSpike(long windowCount, double baseline) {
+        return windowCount >= minimumCount && windowCount > spikeFactor * baseline * buckets;
+    }
+
+    /**
+     * @return the window now tracking {@code key}, or null if there is no room for it.
+     */
+    @Nullable
+    private Window admit(String key, long epoch) {
+        synchronized (evictionOrder) {
+            Window existing = windows.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (windows.size() >= maximumKeys && !evictOne(epoch)) {
+                return null;
+            }
+            Window window = new Window(key, epoch);
+            windows.put(key, window);
+            evictionOrder.add(window);
+            return window;
+        }
+    }
+
+    /**
+     * Sweeps the clock hand over the tracked windows, giving recently-recorded ones a second chance and skipping those
+     * still spiking. Every window is visited at most twice, and amortised over admissions a sweep is short.
+     */
+    private boolean evictOne(long epoch) {
+        for (int visits = 2 * evictionOrder.size(); visits > 0; --visits) {
+            Window candidate = evictionOrder.remove();
+
+            // A window that stopped receiving events is only re-armed once it is brought up to date.
+            candidate.advance(epoch);
+
+            if (candidate.escalated.get() || candidate.referenced.getAndSet(false)) {
+                evictionOrder.add(candidate);
+            } else {
+                windows.remove(candidate.key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @see ErrorRateMonitor
+     */
+    @FunctionalInterface
+    public interface Escalator {
+
+        /**
+         * @param key         the key that started spiking, as produced by the monitor's grouping function.
+         * @param windowCount how many events for the key are in the current window.
+         * @param baseline    the key's baseline count per bucket.
+         */
+        void escalate(String key, long windowCount, double baseline);
+    }
+
+    /**
+     * A ring of per-bucket counters for a single key. Counting is lock-free; only advancing to a new bucket, which
+     * happens at most once per bucket duration, takes the window's lock.
+     */
+    private final class Window {
+
+        private final LongAdder[] counts = new LongAdder[buckets];
+        private final AtomicLongArray epochs = new AtomicLongArray(buckets);
+        private final AtomicBoolean escalated = new AtomicBoolean();
+        private final AtomicBoolean referenced = new AtomicBoolean(true);
+        private final String key;
+        private volatile long lastEpoch;
+        private volatile double baseline;
+
+        Window(String key, long epoch) {
+            this.key = key;
+            for (int i = 0; i < buckets; ++i) {
+                counts[i] = new LongAdder();
+                epochs.set(i, Long.MIN_VALUE);
+            }
+            epochs.set(slot(epoch), epoch);
+            lastEpoch = epoch;
+        }
+
+        /**
+         * @return how many events are in the window, including this one.
+         */
+        long record(long epoch) {
+            if (epoch > lastEpoch) {
+                advance(epoch);
+            }
+            if (!referenced.get()) {
+                referenced.set(true);
+            }
+            counts[slot(lastEpoch)].increment();
+            return sum(lastEpoch);
+        }
+
+        synchronized void advance(long epoch) {
+            long previous = lastEpoch;
+            if (epoch <= previous) {
+                return;
+            }
+
+            // Fold each completed bucket into the baseline. Buckets beyond the ring's reach saw no events, and folding
+            // a run of empty buckets in is the same as decaying the baseline once for each of them.
+            long completed = Math.min(epoch - previous, buckets);
+            double updated = baseline;
+            for (long e = previous; e < previous + completed; ++e) {
+                updated = updated * (1 - BASELINE_WEIGHT) + countAt(e) * BASELINE_WEIGHT;
+            }
+            updated *= Math.pow(1 - BASELINE_WEIGHT, (epoch - previous) - completed);
+            baseline = updated;
+
+            for (long e = Math.max(previous + 1, epoch - buckets + 1); e <= epoch; ++e) {
+                counts[slot(e)].reset();
+                epochs.set(slot(e), e);
+            }
+            lastEpoch = epoch;
+
+            if (!isSpike(sum(epoch), updated)) {
+                escalated.set(false);
+            }
+        }
+
+        private long sum(long epoch) {
+            long total = 0;
+            for (long e = epoch - buckets + 1; e <= epoch; ++e) {
+                total += countAt(e);
+            }
+            return total;
+        }
+
+        private long countAt(long epoch) {
+            int slot = slot(epoch);
+            return epochs.get(slot) == epoch ? counts[slot].sum() : 0;
+        }
+
+        private int slot(long epoch) {
+            return (int) Math.floorMod(epoch, (long) buckets);
+        }
+    }
+}
@@ -24,6 +24,7 @@ public class ExceptionsService {
 
     private final Set<Class<? extends Exception>> exceptionsToIgnore;
     private final Set<? extends Reporter> reporters;
+    private final Optional<ErrorRateMonitor> errorRateMonitor;
 
     /**
      * @return exception utilities that work on all exceptions derived from `java.lang.Exception`, except for
@@ -37,6 +38,22 @@ public class ExceptionsService {
     public ExceptionsService(Set<Class<? extends Exception>> exceptionsToIgnore, Set<? extends Reporter> reporters) {
         this.exceptionsToIgnore = exceptionsToIgnore;
         this.reporters = reporters;
+        this.errorRateMonitor = Optional.empty();
+    }
+
+    /**
+     * @return exception utilities as with {@link #ExceptionsService(Set, Set)}, but which also count every reported
+     * exception in {@code errorRateMonitor}, after the reporters have run. The monitor escalates once when an exception's
+     * rate spikes, so {@code reporters} can be kept to a minimum without missing real incidents.
+     */
+    public ExceptionsService(
+            Set<Class<? extends Exception>> exceptionsToIgnore,
+            Set<? extends Reporter> reporters,
+            ErrorRateMonitor errorRateMonitor
+    ) {
+        this.exceptionsToIgnore = exceptionsToIgnore;
+        this.reporters = reporters;
+        this.errorRateMonitor = Optional.of(errorRateMonitor);
     }
 
     /**
@@ -111,7 +128,7 @@ public class ExceptionsService {
                 throwUnchecked(e);
                 throw new InvalidCodePathException();
             } else {
-                reporters.forEach(reporter -> reporter.report(e));
+                report(e);
                 return Optional.empty();
             }
         }
@@ -156,7 +173,7 @@ public class ExceptionsService {
             return f.run();
         } catch (Exception e) {
             if (!toBeBypassed(e)) {
-                reporters.forEach(reporter -> reporter.report(e));
+                report(e);
             }
             throwUnchecked(e);
             throw new InvalidCodePathException();
@@ -177,6 +194,11 @@ public class ExceptionsService {
         });
     }
 
+    private void report(Exception exception) {
+        reporters.forEach(reporter -> reporter.report(exception));
+        errorRateMonitor.ifPresent(monitor -> monitor.record(exception));
+    }
+
     private boolean toBeBypassed(Exception exception) {
         return exceptionsToIgnore
                 .stream()
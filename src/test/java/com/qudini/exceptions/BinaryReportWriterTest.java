@@ -0,0 +1,263 @@
+package com.qudini.exceptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryReportWriterTest {
+
+    private static final Instant NOW = Instant.parse("2018-06-01T12:00:00Z");
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            IllegalStateException cause = new IllegalStateException("the cause");
+            cause.setStackTrace(new StackTraceElement[]{
+                    new StackTraceElement("com.example.Dao", "load", "Dao.java", 42),
+                    new StackTraceElement("com.example.Service", "handle", "Service.java", 10),
+                    new StackTraceElement("com.example.Main", "main", null, -1)
+            });
+            Exception wrapped = new Exception("wrapped", cause);
+            wrapped.setStackTrace(new StackTraceElement[]{
+                    new StackTraceElement("com.example.Service", "handle", "Service.java", 11),
+                    new StackTraceElement("com.example.Main", "main", null, -1)
+            });
+            RuntimeCheckedException exception = new RuntimeCheckedException(wrapped);
+            exception.setStackTrace(new StackTraceElement[]{
+                    new StackTraceElement("com.example.Service", "handle", "Service.java", 12),
+                    new StackTraceElement("com.example.Main", "main", null, -1)
+            });
+
+            try (BinaryReportWriter writer = writer(path, 1 << 16)) {
+                writer.report(exception);
+                writer.report("custom message", cause);
+            }
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                BinaryReportReader.Event first = reader.read().orElseThrow(AssertionError::new);
+                assertEquals(NOW, first.getTimestamp());
+                assertEquals(Optional.of(exception.getMessage()), first.getMessage());
+                assertEquals(printStackTrace(exception), first.getTrace());
+
+                BinaryReportReader.Event second = reader.read().orElseThrow(AssertionError::new);
+                assertEquals(Optional.of("custom message"), second.getMessage());
+                assertEquals(printStackTrace(cause), second.getTrace());
+
+                assertFalse(reader.read().isPresent());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void roundTripSuppressed() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            Exception exception = exception("com.example.Service", 3);
+            Exception suppressed = exception("com.example.Resource", 2);
+            suppressed.initCause(exception("com.example.Socket", 1));
+            exception.addSuppressed(suppressed);
+            exception.initCause(exception("com.example.Dao", 2));
+
+            try (BinaryReportWriter writer = writer(path, 1 << 16)) {
+                writer.report(exception);
+            }
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                assertEquals(printStackTrace(exception), reader.read().orElseThrow(AssertionError::new).getTrace());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void appendsNewSegments() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            for (int i = 0; i < 2; ++i) {
+                try (BinaryReportWriter writer = writer(path, 1 << 16)) {
+                    writer.report(new UnsupportedOperationException());
+                }
+            }
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                assertTrue(reader.read().isPresent());
+                assertTrue(reader.read().isPresent());
+                assertFalse(reader.read().isPresent());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void skipsTornBatches() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            try (BinaryReportWriter writer = writer(path, 1 << 16)) {
+                writer.report("kept", exception("com.example.Kept", 2));
+                writer.flush();
+                writer.report("torn", exception("com.example.Torn", 2));
+            }
+
+            // As if the process crashed part-way through writing the last batch.
+            try (FileChannel channel = FileChannel.open(path, WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                assertEquals(Optional.of("kept"), reader.read().flatMap(BinaryReportReader.Event::getMessage));
+                assertFalse(reader.read().isPresent());
+            }
+
+            try (BinaryReportWriter writer = writer(path, 1 << 16)) {
+                writer.report("appended 1", exception("com.example.Appended", 2));
+                writer.report("appended 2", exception("com.example.Appended", 2));
+            }
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                assertEquals(Optional.of("kept"), reader.read().flatMap(BinaryReportReader.Event::getMessage));
+                assertEquals(Optional.of("appended 1"), reader.read().flatMap(BinaryReportReader.Event::getMessage));
+                assertEquals(Optional.of("appended 2"), reader.read().flatMap(BinaryReportReader.Event::getMessage));
+                assertFalse(reader.read().isPresent());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void startsNewSegmentsPastDictionaryLimit() throws IOException {
+        Path unbounded = Files.createTempFile("reports", ".bin");
+        Path bounded = Files.createTempFile("reports", ".bin");
+        try {
+            for (Path path : new Path[]{unbounded, bounded}) {
+                try (BinaryReportWriter writer = writer(path, path == bounded ? 4 : 1 << 16)) {
+                    for (int i = 0; i < 10; ++i) {
+                        writer.report("report " + i, exception("com.example.Service" + i % 3, 2));
+                        writer.flush();
+                    }
+                }
+            }
+
+            // Every new segment repeats the dictionary entries it uses.
+            assertTrue(Files.size(bounded) > Files.size(unbounded));
+
+            try (BinaryReportReader reader = new BinaryReportReader(bounded)) {
+                for (int i = 0; i < 10; ++i) {
+                    BinaryReportReader.Event event = reader.read().orElseThrow(AssertionError::new);
+                    assertEquals(Optional.of("report " + i), event.getMessage());
+                    assertTrue(event.getTrace().startsWith("java.lang.Exception: com.example.Service" + i % 3));
+                }
+                assertFalse(reader.read().isPresent());
+            }
+        } finally {
+            Files.delete(unbounded);
+            Files.delete(bounded);
+        }
+    }
+
+    @Test
+    public void flushesInTheBackground() throws IOException, InterruptedException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try (BinaryReportWriter writer = new BinaryReportWriter(path, Duration.ofMillis(10))) {
+            writer.report(new UnsupportedOperationException());
+
+            for (int i = 0; i < 500 && Files.size(path) == 0; ++i) {
+                Thread.sleep(10);
+            }
+            assertTrue(Files.size(path) > 0);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void dropsUnwritableReports() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            BinaryReportWriter writer = writer(path, 1 << 16);
+            writer.close();
+
+            writer.report(new UnsupportedOperationException());
+            assertEquals(1, writer.getDroppedReports());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void rejectsOutOfRangeCounts() throws IOException {
+        Path path = Files.createTempFile("reports", ".bin");
+        try {
+            ByteBuffer contents = ByteBuffer.allocate(32);
+            contents.putInt(0);
+            contents.put((byte) BinaryReportWriter.TAG_SEGMENT).put((byte) BinaryReportWriter.VERSION).put((byte) 0);
+
+            // A string claiming to be far longer than the batch.
+            contents.put((byte) BinaryReportWriter.TAG_STRING);
+            contents.put(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F});
+            contents.flip();
+
+            CRC32 crc = new CRC32();
+            crc.update(contents.duplicate());
+            ByteBuffer batch = ByteBuffer.allocate(BinaryReportWriter.BATCH_HEADER_SIZE + contents.remaining());
+            batch.putInt(BinaryReportWriter.BATCH_MARKER).putInt(contents.remaining()).putInt((int) crc.getValue());
+            batch.put(contents);
+            Files.write(path, batch.array());
+
+            try (BinaryReportReader reader = new BinaryReportReader(path)) {
+                assertThrows(IOException.class, reader::read);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static BinaryReportWriter writer(Path path, int maximumDictionarySize) throws IOException {
+        return new BinaryReportWriter(
+                path,
+                Duration.ofDays(1),
+                maximumDictionarySize,
+                Clock.fixed(NOW, ZoneOffset.UTC)
+        );
+    }
+
+    /**
+     * @return an exception with a synthetic trace, so that it prints the same after a round trip on any Java version.
+     */
+    private static Exception exception(String className, int depth) {
+        Exception exception = new Exception(className);
+        StackTraceElement[] trace = new StackTraceElement[depth + 1];
+        for (int i = 0; i < depth; ++i) {
+            trace[i] = new StackTraceElement(className, "method" + i, "Source.java", i + 1);
+        }
+        trace[depth] = new StackTraceElement("com.example.Main", "main", "Main.java", 1);
+        exception.setStackTrace(trace);
+        return exception;
+    }
+
+    private static String printStackTrace(Throwable throwable) {
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+}
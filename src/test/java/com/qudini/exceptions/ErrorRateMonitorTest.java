@@ -0,0 +1,165 @@
+package com.qudini.exceptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ErrorRateMonitorTest {
+
+    private static final long SECOND = Duration.ofSeconds(1).toNanos();
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<String> escalations = new ArrayList<>();
+
+    private ErrorRateMonitor monitor(int maximumKeys) {
+        return new ErrorRateMonitor(
+                Duration.ofSeconds(10),
+                10,
+                3.0,
+                5,
+                maximumKeys,
+                ErrorRateMonitor::byClass,
+                (key, windowCount, baseline) -> escalations.add(key),
+                now::get
+        );
+    }
+
+    @Test
+    public void escalatesOncePerSpike() {
+        ErrorRateMonitor monitor = monitor(16);
+
+        // A steady baseline of one event a second.
+        for (int i = 0; i < 100; ++i) {
+            now.addAndGet(SECOND);
+            monitor.record(new IllegalStateException());
+        }
+        assertTrue(escalations.isEmpty());
+
+        for (int i = 0; i < 100; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(1, escalations.size());
+        assertEquals(IllegalStateException.class.getName(), escalations.get(0));
+    }
+
+    @Test
+    public void rearmsOnceSpikeSubsides() {
+        ErrorRateMonitor monitor = monitor(16);
+
+        for (int i = 0; i < 10; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(1, escalations.size());
+
+        now.addAndGet(60 * SECOND);
+        monitor.record(new IllegalStateException());
+        for (int i = 0; i < 10; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(2, escalations.size());
+    }
+
+    @Test
+    public void ignoresSmallBursts() {
+        ErrorRateMonitor monitor = monitor(16);
+
+        for (int i = 0; i < 4; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertTrue(escalations.isEmpty());
+    }
+
+    @Test
+    public void forgetsStalestKeys() {
+        ErrorRateMonitor monitor = monitor(1);
+
+        // A steady baseline of one event a second, well above what a burst of `minimumCount` would spike over.
+        for (int i = 0; i < 100; ++i) {
+            now.addAndGet(SECOND);
+            monitor.record(new IllegalStateException());
+        }
+        monitor.record(new IllegalArgumentException());
+        assertTrue(escalations.isEmpty());
+
+        // Having been forgotten, the key's baseline starts again from nothing.
+        for (int i = 0; i < 5; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(asList(IllegalStateException.class.getName()), escalations);
+    }
+
+    @Test
+    public void containsKeyFailures() {
+        ErrorRateMonitor monitor = new ErrorRateMonitor(
+                Duration.ofSeconds(10),
+                10,
+                3.0,
+                5,
+                16,
+                exception -> null,
+                (key, windowCount, baseline) -> escalations.add(key),
+                now::get
+        );
+
+        monitor.record(new IllegalStateException());
+        assertEquals(1, monitor.getKeyFailures());
+    }
+
+    @Test
+    public void keepsSpikingKeys() {
+        ErrorRateMonitor monitor = monitor(1);
+
+        for (int i = 0; i < 10; ++i) {
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(1, escalations.size());
+
+        // There's no room for a new key while the only tracked one is spiking, so it's neither tracked nor re-escalated.
+        for (int i = 0; i < 10; ++i) {
+            monitor.record(new IllegalArgumentException());
+            monitor.record(new IllegalStateException());
+        }
+        assertEquals(1, escalations.size());
+    }
+
+    @Test
+    public void containsEscalatorFailures() {
+        ErrorRateMonitor monitor = new ErrorRateMonitor(
+                Duration.ofSeconds(10),
+                10,
+                3.0,
+                5,
+                16,
+                ErrorRateMonitor::byClass,
+                (key, windowCount, baseline) -> {
+                    throw new IllegalStateException("pager is down");
+                },
+                now::get
+        );
+
+        for (int i = 0; i < 10; ++i) {
+            monitor.record(new UnsupportedOperationException());
+        }
+        assertEquals(1, monitor.getEscalationFailures());
+    }
+
+    @Test
+    public void rejectsNonPositiveMinimumCount() {
+        assertThrows(IllegalArgumentException.class, () -> new ErrorRateMonitor(
+                Duration.ofSeconds(10),
+                10,
+                3.0,
+                0,
+                16,
+                ErrorRateMonitor::byClass,
+                (key, windowCount, baseline) -> {
+                }
+        ));
+    }
+}
@@ -2,6 +2,7 @@ package com.qudini.exceptions;
 
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -92,6 +93,115 @@ public class ExceptionsServiceTest {
         }
     }
 
+    @Test
+    public void recordsErrorRates() {
+        AtomicInteger escalationCount = new AtomicInteger();
+        ErrorRateMonitor monitor = new ErrorRateMonitor(
+                Duration.ofMinutes(1),
+                6,
+                3.0,
+                4,
+                16,
+                ErrorRateMonitor::byClass,
+                (key, windowCount, baseline) -> escalationCount.incrementAndGet()
+        );
+        ExceptionsService exceptionsService = new ExceptionsService(excludedExceptions, emptySet(), monitor);
+
+        for (int i = 0; i < 2; ++i) {
+            exceptionsService.reportQuietly(() -> {
+                throw new UnsupportedOperationException();
+            });
+            try {
+                exceptionsService.reportAndRethrow(() -> {
+                    throw new ExcludedException1();
+                });
+                fail();
+            } catch (ExcludedException1 exception) {
+            }
+        }
+        assertEquals(0, escalationCount.get());
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                exceptionsService.reportAndRethrow(() -> {
+                    throw new UnsupportedOperationException();
+                });
+                fail();
+            } catch (UnsupportedOperationException exception) {
+            }
+        }
+        assertEquals(1, escalationCount.get());
+    }
+
+    @Test
+    public void reportsDespiteFailingEscalator() {
+        AtomicInteger reportCount = new AtomicInteger();
+        Set<ExceptionsService.Reporter> reporters = singleton((e, m) -> reportCount.incrementAndGet());
+        ErrorRateMonitor monitor = new ErrorRateMonitor(
+                Duration.ofMinutes(1),
+                6,
+                3.0,
+                1,
+                16,
+                ErrorRateMonitor::byClass,
+                (key, windowCount, baseline) -> {
+                    throw new IllegalStateException("pager is down");
+                }
+        );
+        ExceptionsService exceptionsService = new ExceptionsService(emptySet(), reporters, monitor);
+
+        exceptionsService.reportQuietly(() -> {
+            throw new Exception();
+        });
+        assertEquals(1, reportCount.get());
+        assertEquals(1, monitor.getEscalationFailures());
+
+        try {
+            exceptionsService.reportAndRethrow(() -> {
+                throw new UnsupportedOperationException();
+            });
+            fail();
+        } catch (UnsupportedOperationException exception) {
+            assertEquals(2, reportCount.get());
+            assertEquals(2, monitor.getEscalationFailures());
+        }
+    }
+
+    @Test
+    public void reportsDespiteFailingKeys() {
+        AtomicInteger reportCount = new AtomicInteger();
+        Set<ExceptionsService.Reporter> reporters = singleton((e, m) -> reportCount.incrementAndGet());
+        ErrorRateMonitor monitor = new ErrorRateMonitor(
+                Duration.ofMinutes(1),
+                6,
+                3.0,
+                1,
+                16,
+                exception -> {
+                    throw new IllegalStateException("cannot fingerprint");
+                },
+                (key, windowCount, baseline) -> {
+                }
+        );
+        ExceptionsService exceptionsService = new ExceptionsService(emptySet(), reporters, monitor);
+
+        assertFalse(exceptionsService.reportQuietly(() -> {
+            throw new Exception();
+        }).isPresent());
+        assertEquals(1, reportCount.get());
+        assertEquals(1, monitor.getKeyFailures());
+
+        try {
+            exceptionsService.reportAndRethrow(() -> {
+                throw new UnsupportedOperationException();
+            });
+            fail();
+        } catch (UnsupportedOperationException exception) {
+            assertEquals(2, reportCount.get());
+            assertEquals(2, monitor.getKeyFailures());
+        }
+    }
+
     private final class ExcludedException1 extends RuntimeException {
     }
 